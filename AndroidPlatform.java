@@ -0,0 +1,43 @@
+import android.os.Handler;
+import android.os.Looper;
+import android.webkit.MimeTypeMap;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Android 平台适配：主线程回调，MimeTypeMap 解析 MIME 类型
+ * <p>
+ * 由 {@link Platform} 按类名反射加载，服务端构建可以不包含此文件。
+ */
+public class AndroidPlatform extends Platform {
+
+    public AndroidPlatform() {
+    }
+
+    @Override
+    protected Executor defaultCallbackExecutor() {
+        return MainThreadExecutor.INSTANCE;
+    }
+
+    @Override
+    protected MimeResolver defaultMimeResolver() {
+        return new MimeResolver() {
+            @Override
+            public String getMimeType(String extension) {
+                return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+            }
+        };
+    }
+
+    private static class MainThreadExecutor implements Executor {
+
+        static final MainThreadExecutor INSTANCE = new MainThreadExecutor();
+
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    }
+}
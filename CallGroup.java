@@ -0,0 +1,63 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 请求分组（如一个页面或一个批处理任务），可一次取消组内所有进行中的请求
+ * <p>
+ * 被取消的请求（包括加入时分组已取消的请求）不再回调 onSuccess / onError，
+ * OkHttpHelper 和 RetrofitHelper 的行为一致。
+ */
+public class CallGroup {
+
+    /**
+     * 可取消的请求句柄
+     */
+    public interface Cancellable {
+
+        void cancel();
+    }
+
+    private final Set<Cancellable> calls = new LinkedHashSet<>();
+    private boolean canceled;
+
+    /**
+     * 加入分组，分组已取消时立即取消该请求
+     */
+    public void add(Cancellable call) {
+        synchronized (this) {
+            if (!canceled) {
+                calls.add(call);
+                return;
+            }
+        }
+        call.cancel();
+    }
+
+    /**
+     * 请求结束后移出分组
+     */
+    public synchronized void remove(Cancellable call) {
+        calls.remove(call);
+    }
+
+    /**
+     * 取消组内所有请求，之后加入的请求也会被立即取消
+     */
+    public void cancel() {
+        List<Cancellable> snapshot;
+        synchronized (this) {
+            canceled = true;
+            snapshot = new ArrayList<>(calls);
+            calls.clear();
+        }
+        for (Cancellable call : snapshot) {
+            call.cancel();
+        }
+    }
+
+    public synchronized boolean isCanceled() {
+        return canceled;
+    }
+}
@@ -0,0 +1,41 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 请求截止时间，在重试之间传递剩余时间预算
+ */
+public final class Deadline {
+
+    public static final String HEADER = "X-Request-Timeout"; //向服务端传递剩余时间（毫秒）的请求头
+
+    private final long deadlineNanos;
+
+    private Deadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * 从现在起经过 duration 后到期
+     */
+    public static Deadline after(long duration, TimeUnit unit) {
+        return new Deadline(System.nanoTime() + unit.toNanos(duration));
+    }
+
+    /**
+     * 剩余时间，已到期时返回 0
+     */
+    public long remaining(TimeUnit unit) {
+        long remaining = deadlineNanos - System.nanoTime();
+        return remaining > 0 ? unit.convert(remaining, TimeUnit.NANOSECONDS) : 0;
+    }
+
+    public boolean isExpired() {
+        return deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * 请求头取值，已到期时为 "0"
+     */
+    String headerValue() {
+        return String.valueOf(remaining(TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,334 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 按内容寻址的下载缓存
+ * <p>
+ * 文件以 SHA-256 命名保存，也可通过下载地址 + ETag 查找。命中时以硬链接（不支持时复制）交付，不访问网络。
+ * 摘要在写入时增量计算，与期望值不符的内容会被丢弃。超过容量时按最近使用时间淘汰。
+ * 缓存文件设为只读，硬链接与缓存共享同一份数据，覆盖交付的文件前必须先删除而不能原地写入；
+ * 命中时校验文件大小，大小不符的条目被丢弃。
+ */
+public class DownloadCache {
+
+    private static final String TEMP_DIR = "tmp";  //下载中的临时文件
+    private static final String ETAG_DIR = "etag"; //下载地址 + ETag 到内容摘要的索引
+    private static final String SIZE_DIR = "size"; //内容摘要到文件大小的记录
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final long maxSize;
+
+    /**
+     * @param directory 缓存目录
+     * @param maxSize   缓存容量（字节）
+     */
+    public DownloadCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 查找缓存，命中时交付到 target
+     *
+     * @param url    下载地址，ETag 只在同一地址下有效
+     * @param sha256 期望的内容摘要（64 位十六进制），可为 null
+     * @param etag   ETag，可为 null
+     * @return 是否命中
+     * @throws IllegalArgumentException sha256 不是 64 位十六进制
+     */
+    public synchronized boolean copyTo(String url, String sha256, String etag, File target) throws IOException {
+        checkSha256(sha256);
+        File file = lookup(url, sha256, etag);
+        if (file == null) {
+            return false;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        deliver(file, target);
+        return true;
+    }
+
+    /**
+     * 开始写入一个新条目
+     *
+     * @param url    下载地址
+     * @param sha256 期望的内容摘要（64 位十六进制），可为 null（此时不校验）
+     * @param etag   ETag，可为 null
+     * @throws IllegalArgumentException sha256 不是 64 位十六进制
+     */
+    public Editor edit(String url, String sha256, String etag) throws IOException {
+        checkSha256(sha256);
+        File tempDir = new File(directory, TEMP_DIR);
+        if (!tempDir.isDirectory() && !tempDir.mkdirs()) {
+            throw new IOException("Cannot create " + tempDir);
+        }
+        return new Editor(File.createTempFile("download", ".tmp", tempDir), url, sha256, etag);
+    }
+
+    /**
+     * 缓存条目写入器，写入的同时计算 SHA-256
+     */
+    public class Editor {
+
+        private final File tempFile;
+        private final String url;
+        private final String sha256;
+        private final String etag;
+        private MessageDigest digest;
+        private OutputStream outputStream;
+
+        private Editor(File tempFile, String url, String sha256, String etag) {
+            this.tempFile = tempFile;
+            this.url = url;
+            this.sha256 = sha256;
+            this.etag = etag;
+        }
+
+        public OutputStream newOutputStream() throws IOException {
+            if (outputStream == null) {
+                digest = sha256Digest();
+                outputStream = new DigestOutputStream(new FileOutputStream(tempFile), digest);
+            }
+            return outputStream;
+        }
+
+        /**
+         * 校验摘要并存入缓存，然后交付到 target
+         *
+         * @throws IOException 摘要与期望值不符
+         */
+        public File commit(File target) throws IOException {
+            newOutputStream().close();
+            String actual = hex(digest.digest());
+            if (sha256 != null && !sha256.equalsIgnoreCase(actual)) {
+                tempFile.delete();
+                throw new IOException("SHA-256 mismatch: expected " + sha256 + " but was " + actual);
+            }
+            synchronized (DownloadCache.this) {
+                File file = new File(directory, actual);
+                if (file.exists()) {
+                    tempFile.delete();
+                    file.setLastModified(System.currentTimeMillis());
+                } else if (tempFile.renameTo(file)) {
+                    writeString(sizeFile(actual), String.valueOf(file.length()));
+                    file.setReadOnly();
+                } else {
+                    tempFile.delete();
+                    throw new IOException("Cannot move " + tempFile + " to " + file);
+                }
+                if (etag != null) {
+                    writeString(aliasFile(url, etag), actual);
+                }
+                deliver(file, target);
+                trim();
+                return file;
+            }
+        }
+
+        public void abort() {
+            try {
+                if (outputStream != null) {
+                    outputStream.close();
+                }
+            } catch (IOException ignored) {
+            }
+            tempFile.delete();
+        }
+    }
+
+    private File lookup(String url, String sha256, String etag) throws IOException {
+        String name = sha256 != null ? sha256.toLowerCase() : null;
+        if (name == null && etag != null) {
+            name = readString(aliasFile(url, etag));
+            if (name != null && !isSha256(name)) {
+                //索引内容损坏，只删除索引本身
+                aliasFile(url, etag).delete();
+                return null;
+            }
+        }
+        if (name == null) {
+            return null;
+        }
+        File file = new File(directory, name);
+        String size = readString(sizeFile(name));
+        if (!file.isFile() || size == null || !size.equals(String.valueOf(file.length()))) {
+            remove(file);
+            if (etag != null) {
+                aliasFile(url, etag).delete();
+            }
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * 摘要用作缓存内的文件名，只接受 64 位十六进制，防止路径穿越
+     */
+    static void checkSha256(String sha256) {
+        if (sha256 != null && !isSha256(sha256)) {
+            throw new IllegalArgumentException("Invalid SHA-256: " + sha256);
+        }
+    }
+
+    private static boolean isSha256(String value) {
+        if (value.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f') && !(c >= 'A' && c <= 'F')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private File aliasFile(String url, String etag) throws IOException {
+        byte[] key = (url + "\n" + etag).getBytes(UTF_8);
+        return new File(new File(directory, ETAG_DIR), hex(sha256Digest().digest(key)));
+    }
+
+    private File sizeFile(String sha256) {
+        return new File(new File(directory, SIZE_DIR), sha256);
+    }
+
+    /**
+     * 删除缓存文件及其大小记录
+     */
+    private boolean remove(File file) {
+        file.setWritable(true);
+        boolean deleted = file.delete();
+        sizeFile(file.getName()).delete();
+        return deleted;
+    }
+
+    private static String readString(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[64];
+            int len = 0;
+            int read;
+            while (len < bytes.length && (read = in.read(bytes, len, bytes.length - len)) != -1) {
+                len += read;
+            }
+            return new String(bytes, 0, len, UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeString(File file, String value) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(value.getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 优先硬链接，文件系统或平台不支持时复制
+     */
+    private static void deliver(File file, File target) throws IOException {
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Cannot replace " + target);
+        }
+        try {
+            Files.createLink(target.toPath(), file.toPath());
+            return;
+        } catch (IOException | UnsupportedOperationException | SecurityException | LinkageError ignored) {
+            //跨文件系统或低版本 Android 上没有 java.nio.file，退回复制
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                byte[] buffer = new byte[8192];
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 按最近使用时间淘汰，直到总大小不超过容量
+     */
+    private void trim() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> entries = new ArrayList<>();
+        long size = 0;
+        for (File file : files) {
+            if (file.isFile()) {
+                entries.add(file);
+                size += file.length();
+            }
+        }
+        if (size <= maxSize) {
+            return;
+        }
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = a.lastModified();
+                long y = b.lastModified();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        for (File file : entries) {
+            if (size <= maxSize) {
+                break;
+            }
+            long length = file.length();
+            if (remove(file)) {
+                size -= length;
+            }
+        }
+    }
+
+    private static MessageDigest sha256Digest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,387 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 开环压测工具（JVM 上运行）
+ * <p>
+ * 按固定速率发起请求，不等待上一个请求完成；延迟从计划发起时间算起，以修正协同遗漏（coordinated omission）。
+ * 定期输出吞吐、错误数、进行中请求数、延迟分位数、线程数和堆内存，用于发现连接池上限、调度器饱和和内存泄漏。
+ * <p>
+ * 用法：java LoadTester target=okhttp rate=200 duration=60 latency=20 jitter=10 errorRate=0.01 statusErrorRate=0.01 report=5
+ * <ul>
+ * <li>target：okhttp 或 retrofit</li>
+ * <li>rate：每秒请求数</li>
+ * <li>duration：持续时间（秒）</li>
+ * <li>latency / jitter：模拟服务端的基础延迟和随机抖动（毫秒）</li>
+ * <li>errorRate：模拟服务端直接断开连接的比例</li>
+ * <li>statusErrorRate：模拟服务端返回 500 的比例</li>
+ * <li>report：报告间隔（秒）</li>
+ * <li>url：压测外部地址，设置后不启动模拟服务端</li>
+ * </ul>
+ * 两个目标都通过 Helper 带分组的重载发起请求（计入 CallGroup 加入 / 移出和回调的开销），在 I/O 线程上直接回调，
+ * 不经过线程切换；非 2xx 响应和连接错误都计为错误。
+ */
+public class LoadTester {
+
+    private static final String PATH = "load";
+
+    private LoadTester() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int idx = arg.indexOf('=');
+            if (idx > 0) {
+                options.put(arg.substring(0, idx), arg.substring(idx + 1));
+            }
+        }
+        String target = option(options, "target", "okhttp");
+        int rate = Integer.parseInt(option(options, "rate", "100"));
+        int duration = Integer.parseInt(option(options, "duration", "60"));
+        int latency = Integer.parseInt(option(options, "latency", "20"));
+        int jitter = Integer.parseInt(option(options, "jitter", "0"));
+        double errorRate = Double.parseDouble(option(options, "errorRate", "0"));
+        double statusErrorRate = Double.parseDouble(option(options, "statusErrorRate", "0"));
+        int report = Integer.parseInt(option(options, "report", "5"));
+        if (rate <= 0 || duration <= 0 || report <= 0) {
+            throw new IllegalArgumentException("rate, duration and report must be positive");
+        }
+
+        MockServer server = null;
+        String url = options.get("url");
+        if (url == null) {
+            server = new MockServer(latency, jitter, errorRate, statusErrorRate);
+            url = server.start() + PATH;
+        }
+        try {
+            run(target, url, rate, duration, report);
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+        System.exit(0);
+    }
+
+    private static String option(Map<String, String> options, String key, String defaultValue) {
+        String value = options.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    private static void run(String target, String url, int rate, int duration, int report) {
+        final Recorder recorder = new Recorder();
+        Platform.setCallbackExecutor(Platform.INLINE);
+        Target client = "retrofit".equals(target) ? new RetrofitTarget(url) : new OkHttpTarget(url);
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(report);
+        long sequence = 0;
+
+        System.out.println(String.format(Locale.US, "target=%s url=%s rate=%d/s duration=%ds", target, url, rate, duration));
+        System.out.println("time(s)  sent  done  errors  inflight  p50(ms)  p90(ms)  p99(ms)  p99.9(ms)  max(ms)  threads  heap(MB)");
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= nextReport) {
+                recorder.report(TimeUnit.NANOSECONDS.toSeconds(now - start));
+                nextReport += TimeUnit.SECONDS.toNanos(report);
+            }
+            long intended = start + sequence * interval;
+            if (intended >= end) {
+                break;
+            }
+            if (now < intended) {
+                LockSupport.parkNanos(Math.min(intended, nextReport) - now);
+                continue;
+            }
+            //落后于计划时立即补发，计划时间不变，排队时间计入延迟
+            recorder.sent.incrementAndGet();
+            client.fire(recorder.newCallback(intended));
+            sequence++;
+        }
+        long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (recorder.inflight() > 0 && System.nanoTime() < drainUntil) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        recorder.report(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+        recorder.summary(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+    }
+
+    /**
+     * 被压测的客户端
+     */
+    private interface Target {
+
+        void fire(Callback callback);
+    }
+
+    private interface Callback {
+
+        void onComplete(boolean success);
+    }
+
+    private static class OkHttpTarget implements Target {
+
+        private final String url;
+        private final CallGroup group = new CallGroup();
+
+        OkHttpTarget(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public void fire(final Callback callback) {
+            OkHttpHelper.get(url, null, group, new OkHttpHelper.OnCallListener() {
+                @Override
+                public void onSuccess(String result) {
+                    callback.onComplete(true);
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    callback.onComplete(false);
+                }
+            });
+        }
+    }
+
+    private static class RetrofitTarget implements Target {
+
+        private final String baseUrl;
+        private final CallGroup group = new CallGroup();
+
+        RetrofitTarget(String url) {
+            int idx = url.lastIndexOf('/');
+            this.baseUrl = url.substring(0, idx + 1);
+        }
+
+        @Override
+        public void fire(final Callback callback) {
+            RetrofitHelper.get(baseUrl, PATH, Collections.<String, String>emptyMap(), null, group, new RetrofitHelper.RetrofitListener() {
+                @Override
+                public void onSuccess(String result) {
+                    callback.onComplete(true);
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                    callback.onComplete(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * 统计：总计与当前报告区间各一份直方图
+     */
+    private static class Recorder {
+
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong done = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        private final Histogram total = new Histogram();
+        private final AtomicReference<Histogram> current = new AtomicReference<>(new Histogram());
+        private long lastDone;
+        private long lastErrors;
+
+        Callback newCallback(final long intended) {
+            return new Callback() {
+                @Override
+                public void onComplete(boolean success) {
+                    long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended);
+                    total.record(micros);
+                    current.get().record(micros);
+                    if (!success) {
+                        errors.incrementAndGet();
+                    }
+                    done.incrementAndGet();
+                }
+            };
+        }
+
+        long inflight() {
+            return sent.get() - done.get();
+        }
+
+        void report(long seconds) {
+            Histogram interval = current.getAndSet(new Histogram());
+            long doneNow = done.get();
+            long errorsNow = errors.get();
+            Runtime runtime = Runtime.getRuntime();
+            System.out.println(String.format(Locale.US, "%7d %5d %5d %7d %9d %8.1f %8.1f %8.1f %10.1f %8.1f %8d %9d",
+                    seconds, sent.get(), doneNow - lastDone, errorsNow - lastErrors, inflight(),
+                    interval.percentile(50) / 1000.0, interval.percentile(90) / 1000.0,
+                    interval.percentile(99) / 1000.0, interval.percentile(99.9) / 1000.0, interval.max() / 1000.0,
+                    ManagementFactory.getThreadMXBean().getThreadCount(),
+                    (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024)));
+            lastDone = doneNow;
+            lastErrors = errorsNow;
+        }
+
+        void summary(long seconds) {
+            System.out.println();
+            System.out.println(String.format(Locale.US, "sent=%d done=%d errors=%d lost=%d throughput=%.1f/s",
+                    sent.get(), done.get(), errors.get(), inflight(), done.get() / (double) Math.max(1, seconds)));
+            double[] percentiles = {50, 75, 90, 95, 99, 99.9, 99.99, 100};
+            for (double p : percentiles) {
+                System.out.println(String.format(Locale.US, "p%-6s %10.1f ms", p, total.percentile(p) / 1000.0));
+            }
+        }
+    }
+
+    /**
+     * 对数线性直方图（微秒），每个 2 的幂区间再分 32 格，相对误差约 3%
+     */
+    static class Histogram {
+
+        private static final int SUB_BITS = 5;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(index(value));
+            count.incrementAndGet();
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            }
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * 分位数，返回所在区间的上界
+         */
+        long percentile(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        private static int index(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + (int) ((value >> (exponent - SUB_BITS)) - SUB_COUNT);
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB_COUNT) {
+                return index;
+            }
+            int shift = index / SUB_COUNT - 1;
+            long mantissa = index % SUB_COUNT + SUB_COUNT;
+            return ((mantissa + 1) << shift) - 1;
+        }
+    }
+
+    /**
+     * 本地模拟服务端，支持延迟和错误注入
+     */
+    private static class MockServer {
+
+        private final int latency;
+        private final int jitter;
+        private final double errorRate;
+        private final double statusErrorRate;
+        private final Random random = new Random();
+        private HttpServer server;
+        private ExecutorService executor;
+
+        MockServer(int latency, int jitter, double errorRate, double statusErrorRate) {
+            this.latency = latency;
+            this.jitter = jitter;
+            this.errorRate = errorRate;
+            this.statusErrorRate = statusErrorRate;
+        }
+
+        String start() throws IOException {
+            //响应头和响应体分开写出，开启 Nagle 会与客户端的延迟确认叠加出约 40ms 的额外延迟
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+            //服务端不限制线程，避免它成为瓶颈掩盖客户端的问题
+            executor = Executors.newCachedThreadPool();
+            server.setExecutor(executor);
+            server.createContext("/", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    try {
+                        long delay = latency + (jitter > 0 ? nextInt(jitter) : 0);
+                        if (delay > 0) {
+                            Thread.sleep(delay);
+                        }
+                        double dice = nextDouble();
+                        if (dice < errorRate) {
+                            //不返回响应直接断开
+                            return;
+                        }
+                        boolean fail = dice < errorRate + statusErrorRate;
+                        byte[] body = (fail ? "{\"ok\":false}" : "{\"ok\":true}").getBytes("UTF-8");
+                        exchange.getResponseHeaders().add("Content-Type", "application/json");
+                        exchange.sendResponseHeaders(fail ? 500 : 200, body.length);
+                        OutputStream out = exchange.getResponseBody();
+                        out.write(body);
+                        out.close();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        exchange.close();
+                    }
+                }
+            });
+            server.start();
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+        }
+
+        void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+
+        private synchronized int nextInt(int bound) {
+            return random.nextInt(bound);
+        }
+
+        private synchronized double nextDouble() {
+            return random.nextDouble();
+        }
+    }
+}
@@ -1,9 +1,8 @@
-import android.webkit.MimeTypeMap;
-
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.SocketTimeoutException;
 import java.util.List;
 import java.util.Map;
@@ -31,7 +30,7 @@ public class OkHttpHelper {
     private OkHttpHelper() {
     }
 
-    private static OkHttpClient getClient() {
+    static OkHttpClient getClient() {
         if (client == null) {
             synchronized (OkHttpHelper.class) {
                 if (client == null)
@@ -46,7 +45,7 @@ public class OkHttpHelper {
     }
 
     /**
-     * 异步回调接口
+     * 异步回调接口，非 2xx 响应通过 onError 回调 {@link HttpStatusException}
      */
     public interface OnCallListener {
 
@@ -55,6 +54,124 @@ public class OkHttpHelper {
         void onError(Exception e);
     }
 
+    /**
+     * 非 2xx 响应，携带状态码和响应体
+     */
+    public static class HttpStatusException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int code;
+        private final String body;
+
+        HttpStatusException(int code, String message, String body) {
+            super("HTTP " + code + " " + message);
+            this.code = code;
+            this.body = body;
+        }
+
+        public int code() {
+            return code;
+        }
+
+        public String body() {
+            return body;
+        }
+    }
+
+    /**
+     * 创建请求，设置截止时间时把剩余时间作为本次调用的超时并通过请求头告知服务端
+     */
+    private static Call newCall(Request request, Deadline deadline) {
+        if (deadline == null) {
+            return getClient().newCall(request);
+        }
+        Call call = getClient().newCall(request.newBuilder()
+                .header(Deadline.HEADER, deadline.headerValue())
+                .build());
+        //Timeout 为 0 表示不限时，已到期时至少保留 1 纳秒使其立即超时
+        call.timeout().timeout(Math.max(1, deadline.remaining(TimeUnit.NANOSECONDS)), TimeUnit.NANOSECONDS);
+        return call;
+    }
+
+    /**
+     * 异步执行请求并加入分组，结束后移出分组
+     */
+    private static Call enqueue(Request request, Deadline deadline, final CallGroup group, final OnCallListener listener) {
+        final Call call = newCall(request, deadline);
+        final CallGroup.Cancellable handle = new CallGroup.Cancellable() {
+            @Override
+            public void cancel() {
+                call.cancel();
+            }
+        };
+        if (group != null) {
+            group.add(handle);
+        }
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                if (group != null) {
+                    group.remove(handle);
+                }
+                if (!call.isCanceled()) {
+                    listener.onError(e);
+                }
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                if (group != null) {
+                    group.remove(handle);
+                }
+                String body;
+                try {
+                    body = response.body().string();
+                } catch (IOException e) {
+                    onFailure(call, e);
+                    return;
+                }
+                if (call.isCanceled()) {
+                    return;
+                }
+                if (response.isSuccessful()) {
+                    listener.onSuccess(body);
+                } else {
+                    listener.onError(new HttpStatusException(response.code(), response.message(), body));
+                }
+            }
+        });
+        return call;
+    }
+
+    private static RequestBody formBody(Map<String, String> params) {
+        FormBody.Builder builder = new FormBody.Builder();
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            builder.add(entry.getKey(), entry.getValue());
+        }
+        return builder.build();
+    }
+
+    private static RequestBody jsonBody(String json) {
+        return RequestBody.create(MediaType.parse("application/json; charset=utf-8"), json);
+    }
+
+    private static RequestBody multipartBody(Map<String, String> params, List<File> fileList) {
+        MultipartBody.Builder builder = new MultipartBody.Builder().setType(MultipartBody.FORM);
+        if (params != null) {
+            for (String key : params.keySet()) {
+                builder.addFormDataPart(key, params.get(key));
+            }
+        }
+        if (fileList != null && fileList.size() > 0) {
+            for (File file : fileList) {
+                RequestBody requestBody = RequestBody.create(MediaType.parse(getMimeType(file)), file);
+                builder.addFormDataPart(POST_FILE_KEY, file.getName(), requestBody);
+            }
+        }
+        return builder.build();
+    }
+
     /**
      * 同步 get
      */
@@ -70,35 +187,31 @@ public class OkHttpHelper {
     /**
      * 异步 get
      */
-    public static void get(String url, final OnCallListener listener) {
+    public static Call get(String url, final OnCallListener listener) {
+        return get(url, null, null, listener);
+    }
+
+    /**
+     * 异步 get [截止时间 / 分组]
+     *
+     * @param deadline 截止时间，可为 null
+     * @param group    所属分组，可为 null
+     * @return 可用于取消请求的 Call
+     */
+    public static Call get(String url, Deadline deadline, CallGroup group, final OnCallListener listener) {
         Request request = new Request.Builder()
                 .url(url)
                 .build();
-        Call call = getClient().newCall(request);
-        call.enqueue(new Callback() {
-            @Override
-            public void onFailure(Call call, IOException e) {
-                listener.onError(e);
-            }
-
-            @Override
-            public void onResponse(Call call, Response response) throws IOException {
-                listener.onSuccess(response.body().string());
-            }
-        });
+        return enqueue(request, deadline, group, listener);
     }
 
     /**
      * 同步 post [map 形式]
      */
     public static String post(String url, Map<String, String> params) throws IOException {
-        FormBody.Builder builder = new FormBody.Builder();
-        for (Map.Entry<String, String> entry : params.entrySet()) {
-            builder.add(entry.getKey(), entry.getValue());
-        }
         Request request = new Request.Builder()
                 .url(url)
-                .post(builder.build())
+                .post(formBody(params))
                 .build();
         Call call = getClient().newCall(request);
         Response response = call.execute();
@@ -108,27 +221,19 @@ public class OkHttpHelper {
     /**
      * 异步 post [map 形式]
      */
-    public static void post(String url, Map<String, String> params, final OnCallListener listener) {
-        FormBody.Builder builder = new FormBody.Builder();
-        for (Map.Entry<String, String> entry : params.entrySet()) {
-            builder.add(entry.getKey(), entry.getValue());
-        }
+    public static Call post(String url, Map<String, String> params, final OnCallListener listener) {
+        return post(url, params, null, null, listener);
+    }
+
+    /**
+     * 异步 post [map 形式，截止时间 / 分组]
+     */
+    public static Call post(String url, Map<String, String> params, Deadline deadline, CallGroup group, final OnCallListener listener) {
         Request request = new Request.Builder()
                 .url(url)
-                .post(builder.build())
+                .post(formBody(params))
                 .build();
-        Call call = getClient().newCall(request);
-        call.enqueue(new Callback() {
-            @Override
-            public void onFailure(Call call, IOException e) {
-                listener.onError(e);
-            }
-
-            @Override
-            public void onResponse(Call call, Response response) throws IOException {
-                listener.onSuccess(response.body().string());
-            }
-        });
+        return enqueue(request, deadline, group, listener);
     }
 
     /**
@@ -137,7 +242,7 @@ public class OkHttpHelper {
     public static String post(String url, String json) throws IOException {
         Request request = new Request.Builder()
                 .url(url)
-                .post(RequestBody.create(MediaType.parse("application/json; charset=utf-8"), json))
+                .post(jsonBody(json))
                 .build();
         Call call = getClient().newCall(request);
         Response response = call.execute();
@@ -147,44 +252,28 @@ public class OkHttpHelper {
     /**
      * 异步 post [json 形式]
      */
-    public static void post(String url, String json, final OnCallListener listener) {
+    public static Call post(String url, String json, final OnCallListener listener) {
+        return post(url, json, null, null, listener);
+    }
+
+    /**
+     * 异步 post [json 形式，截止时间 / 分组]
+     */
+    public static Call post(String url, String json, Deadline deadline, CallGroup group, final OnCallListener listener) {
         Request request = new Request.Builder()
                 .url(url)
-                .post(RequestBody.create(MediaType.parse("application/json; charset=utf-8"), json))
+                .post(jsonBody(json))
                 .build();
-        Call call = getClient().newCall(request);
-        call.enqueue(new Callback() {
-            @Override
-            public void onFailure(Call call, IOException e) {
-                listener.onError(e);
-            }
-
-            @Override
-            public void onResponse(Call call, Response response) throws IOException {
-                listener.onSuccess(response.body().string());
-            }
-        });
+        return enqueue(request, deadline, group, listener);
     }
 
     /**
      * 同步 post [多文件上传]
      */
     public static String postFiles(String url, Map<String, String> params, List<File> fileList) throws IOException {
-        MultipartBody.Builder builder = new MultipartBody.Builder().setType(MultipartBody.FORM);
-        if (params != null) {
-            for (String key : params.keySet()) {
-                builder.addFormDataPart(key, params.get(key));
-            }
-        }
-        if (fileList != null && fileList.size() > 0) {
-            for (File file : fileList) {
-                RequestBody requestBody = RequestBody.create(MediaType.parse(getMimeType(file)), file);
-                builder.addFormDataPart(POST_FILE_KEY, file.getName(), requestBody);
-            }
-        }
         Request request = new Request.Builder()
                 .url(url)
-                .post(builder.build())
+                .post(multipartBody(params, fileList))
                 .build();
         Call call = getClient().newCall(request);
         Response response = call.execute();
@@ -194,35 +283,19 @@ public class OkHttpHelper {
     /**
      * 异步 post [多文件上传]
      */
-    public static void postFiles(String url, Map<String, String> params, List<File> fileList, final OnCallListener listener) {
-        MultipartBody.Builder builder = new MultipartBody.Builder().setType(MultipartBody.FORM);
-        if (params != null) {
-            for (String key : params.keySet()) {
-                builder.addFormDataPart(key, params.get(key));
-            }
-        }
-        if (fileList != null && fileList.size() > 0) {
-            for (File file : fileList) {
-                RequestBody requestBody = RequestBody.create(MediaType.parse(getMimeType(file)), file);
-                builder.addFormDataPart(POST_FILE_KEY, file.getName(), requestBody);
-            }
-        }
+    public static Call postFiles(String url, Map<String, String> params, List<File> fileList, final OnCallListener listener) {
+        return postFiles(url, params, fileList, null, null, listener);
+    }
+
+    /**
+     * 异步 post [多文件上传，截止时间 / 分组]
+     */
+    public static Call postFiles(String url, Map<String, String> params, List<File> fileList, Deadline deadline, CallGroup group, final OnCallListener listener) {
         Request request = new Request.Builder()
                 .url(url)
-                .post(builder.build())
+                .post(multipartBody(params, fileList))
                 .build();
-        Call call = getClient().newCall(request);
-        call.enqueue(new Callback() {
-            @Override
-            public void onFailure(Call call, IOException e) {
-                listener.onError(e);
-            }
-
-            @Override
-            public void onResponse(Call call, Response response) throws IOException {
-                listener.onSuccess(response.body().string());
-            }
-        });
+        return enqueue(request, deadline, group, listener);
     }
 
     /**
@@ -239,65 +312,221 @@ public class OkHttpHelper {
     /**
      * 下载文件
      */
-    public static void downloadFile(String fileUrl, final String filePath, final OnDownloadListener listener) {
+    public static CallGroup.Cancellable downloadFile(String fileUrl, final String filePath, final OnDownloadListener listener) {
+        return downloadFile(fileUrl, filePath, null, null, listener);
+    }
+
+    /**
+     * 下载文件 [截止时间 / 分组]
+     * <p>
+     * 每次超时重连都以剩余时间作为该次调用的超时，到期后不再重连。
+     *
+     * @return 取消句柄，取消时同时终止进行中的下载和后续重连，之后不再回调
+     */
+    public static CallGroup.Cancellable downloadFile(String fileUrl, String filePath, Deadline deadline, CallGroup group, OnDownloadListener listener) {
+        return downloadFile(fileUrl, filePath, null, null, null, deadline, group, listener);
+    }
+
+    /**
+     * 下载文件 [内容寻址缓存]
+     *
+     * @param sha256 期望的内容摘要（64 位十六进制），可为 null；不为 null 时校验下载内容
+     * @param etag   ETag，可为 null；为 null 时使用响应中的 ETag 建立索引
+     */
+    public static CallGroup.Cancellable downloadFile(String fileUrl, String filePath, String sha256, String etag, DownloadCache cache, OnDownloadListener listener) {
+        return downloadFile(fileUrl, filePath, sha256, etag, cache, null, null, listener);
+    }
+
+    /**
+     * 下载文件 [内容寻址缓存，截止时间 / 分组]
+     * <p>
+     * 缓存命中时不访问网络，回调在 OkHttp 的线程池中执行。
+     */
+    public static CallGroup.Cancellable downloadFile(String fileUrl, String filePath, String sha256, String etag, DownloadCache cache,
+                                                     Deadline deadline, CallGroup group, OnDownloadListener listener) {
+        DownloadCache.checkSha256(sha256);
         Request request = new Request.Builder()
                 .url(fileUrl)
                 .build();
-        Call call = getClient().newCall(request);
-        call.enqueue(new Callback() {
-            int loadTimes = 0; //重新连接次数
+        DownloadCall downloadCall = new DownloadCall(request, filePath, sha256, etag, cache, deadline, group, listener);
+        downloadCall.start();
+        return downloadCall;
+    }
 
-            @Override
-            public void onFailure(Call call, IOException e) {
-                //超时重新连接
-                if (e.getCause().equals(SocketTimeoutException.class) && loadTimes < MAX_LOAD_TIMES) {
-                    loadTimes++;
-                    getClient().newCall(call.request()).enqueue(this);
+    private static class DownloadCall implements Callback, CallGroup.Cancellable {
+
+        private final Request request;
+        private final String filePath;
+        private final String sha256;
+        private final String etag;
+        private final DownloadCache cache;
+        private final Deadline deadline;
+        private final CallGroup group;
+        private final OnDownloadListener listener;
+        private int loadTimes = 0; //重新连接次数
+        private Call current;
+        private boolean canceled;
+
+        DownloadCall(Request request, String filePath, String sha256, String etag, DownloadCache cache,
+                     Deadline deadline, CallGroup group, OnDownloadListener listener) {
+            this.request = request;
+            this.filePath = filePath;
+            this.sha256 = sha256;
+            this.etag = etag;
+            this.cache = cache;
+            this.deadline = deadline;
+            this.group = group;
+            this.listener = listener;
+        }
+
+        void start() {
+            if (group != null) {
+                group.add(this);
+            }
+            if (cache == null || (sha256 == null && etag == null)) {
+                attempt();
+                return;
+            }
+            getClient().dispatcher().executorService().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (cache.copyTo(request.url().toString(), sha256, etag, new File(filePath))) {
+                            finish();
+                            if (!isCanceled()) {
+                                listener.onLoading(100);
+                                listener.onSuccess("");
+                            }
+                            return;
+                        }
+                    } catch (IOException e) {
+                        //缓存不可用时直接下载
+                    }
+                    attempt();
+                }
+            });
+        }
+
+        private void attempt() {
+            Call call;
+            synchronized (this) {
+                if (canceled) {
+                    call = null;
                 } else {
+                    call = current = newCall(request, deadline);
+                }
+            }
+            if (call == null) {
+                finish();
+                return;
+            }
+            call.enqueue(this);
+        }
+
+        @Override
+        public void cancel() {
+            Call call;
+            synchronized (this) {
+                canceled = true;
+                call = current;
+            }
+            if (call != null) {
+                call.cancel();
+            }
+        }
+
+        private synchronized boolean isCanceled() {
+            return canceled;
+        }
+
+        private void finish() {
+            if (group != null) {
+                group.remove(this);
+            }
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            //超时重新连接
+            if (e instanceof SocketTimeoutException && loadTimes < MAX_LOAD_TIMES
+                    && (deadline == null || !deadline.isExpired())) {
+                loadTimes++;
+                attempt();
+            } else {
+                finish();
+                if (!isCanceled()) {
                     listener.onError(e);
                 }
             }
+        }
 
-            @Override
-            public void onResponse(Call call, Response response) throws IOException {
-                InputStream inputStream = response.body().byteStream();
-                long contentLength = response.body().contentLength();
-                FileOutputStream fileOutputStream = null;
-                try {
-                    fileOutputStream = new FileOutputStream(new File(filePath));
-                    byte[] buffer = new byte[2048];
-                    int len, sum = 0;
-                    while ((len = inputStream.read(buffer)) != -1) {
-                        fileOutputStream.write(buffer, 0, len);
-                        sum += len;
-                        int progress = (int) (sum * 1.0f / contentLength * 100);
-                        listener.onLoading(progress);
+        @Override
+        public void onResponse(Call call, Response response) throws IOException {
+            InputStream inputStream = response.body().byteStream();
+            long contentLength = response.body().contentLength();
+            OutputStream fileOutputStream = null;
+            DownloadCache.Editor editor = null;
+            try {
+                if (cache != null) {
+                    //错误响应不进入缓存
+                    if (!response.isSuccessful()) {
+                        throw new IOException("HTTP " + response.code() + " " + response.message());
                     }
-                    fileOutputStream.flush();
-                    listener.onSuccess(response.body().string());
-                } catch (IOException e) {
-                    listener.onError(e);
-                } finally {
-                    try {
-                        if (inputStream != null)
-                            inputStream.close();
-                        if (fileOutputStream != null)
-                            fileOutputStream.close();
-                    } catch (Exception e) {
-                        listener.onError(e);
+                    editor = cache.edit(request.url().toString(), sha256, etag != null ? etag : response.header("ETag"));
+                    fileOutputStream = editor.newOutputStream();
+                } else {
+                    //目标可能是缓存的硬链接，先删除再写入，避免原地覆盖缓存内容
+                    File file = new File(filePath);
+                    if (file.exists() && !file.delete()) {
+                        throw new IOException("Cannot replace " + file);
                     }
-
+                    fileOutputStream = new FileOutputStream(file);
+                }
+                byte[] buffer = new byte[2048];
+                int len, sum = 0;
+                while ((len = inputStream.read(buffer)) != -1) {
+                    fileOutputStream.write(buffer, 0, len);
+                    sum += len;
+                    int progress = (int) (sum * 1.0f / contentLength * 100);
+                    listener.onLoading(progress);
+                }
+                fileOutputStream.flush();
+                if (editor != null) {
+                    editor.commit(new File(filePath));
+                }
+                String body = response.body().string();
+                if (!isCanceled()) {
+                    listener.onSuccess(body);
+                }
+            } catch (IOException e) {
+                if (editor != null) {
+                    editor.abort();
+                }
+                if (!isCanceled()) {
+                    listener.onError(e);
                 }
+            } finally {
+                finish();
+                try {
+                    if (inputStream != null)
+                        inputStream.close();
+                    if (fileOutputStream != null)
+                        fileOutputStream.close();
+                } catch (Exception e) {
+                    listener.onError(e);
+                }
+
             }
-        });
+        }
     }
 
     /**
-     * 工具方法：通过文件获取文件类型
+     * 工具方法：通过文件获取文件类型，无法识别时按二进制流处理
      */
     private static String getMimeType(final File file) {
         String extension = getExtension(file);
-        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+        String mimeType = Platform.mimeResolver().getMimeType(extension);
+        return mimeType != null ? mimeType : "application/octet-stream";
     }
 
     /**
@@ -0,0 +1,106 @@
+import java.net.FileNameMap;
+import java.net.URLConnection;
+import java.util.concurrent.Executor;
+
+/**
+ * 平台相关能力：回调线程与 MIME 类型解析
+ * <p>
+ * 核心代码不直接依赖 Android；在 Android 上运行时通过反射加载 {@code AndroidPlatform}，
+ * 在服务端 JVM 上不会加载任何 Android 类。两者都可通过 setter 替换。
+ * 混淆时需保留 {@code AndroidPlatform}（见 consumer-rules.pro），否则在 Android 上首次使用默认值时抛出异常。
+ */
+public class Platform {
+
+    /**
+     * MIME 类型解析接口
+     */
+    public interface MimeResolver {
+
+        /**
+         * @param extension 文件后缀（不含 "."）
+         * @return MIME 类型，未知时返回 null
+         */
+        String getMimeType(String extension);
+    }
+
+    /**
+     * 在 I/O 线程上直接回调，没有线程切换
+     */
+    public static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final String ANDROID_PLATFORM = "AndroidPlatform";
+    private static volatile Executor sCallbackExecutor;
+    private static volatile MimeResolver sMimeResolver;
+
+    protected Platform() {
+    }
+
+    /**
+     * 设置 RetrofitHelper 的回调线程，传入 {@link #INLINE} 时在 I/O 线程上直接回调
+     */
+    public static void setCallbackExecutor(Executor executor) {
+        sCallbackExecutor = executor;
+    }
+
+    /**
+     * 回调线程，默认 Android 上为主线程，JVM 上为 {@link #INLINE}
+     */
+    public static Executor callbackExecutor() {
+        Executor executor = sCallbackExecutor;
+        return executor != null ? executor : Holder.PLATFORM.defaultCallbackExecutor();
+    }
+
+    public static void setMimeResolver(MimeResolver resolver) {
+        sMimeResolver = resolver;
+    }
+
+    /**
+     * MIME 类型解析，默认 Android 上使用 MimeTypeMap，JVM 上使用 URLConnection 的文件名映射
+     */
+    public static MimeResolver mimeResolver() {
+        MimeResolver resolver = sMimeResolver;
+        return resolver != null ? resolver : Holder.PLATFORM.defaultMimeResolver();
+    }
+
+    protected Executor defaultCallbackExecutor() {
+        return INLINE;
+    }
+
+    protected MimeResolver defaultMimeResolver() {
+        return new MimeResolver() {
+            @Override
+            public String getMimeType(String extension) {
+                FileNameMap fileNameMap = URLConnection.getFileNameMap();
+                return fileNameMap.getContentTypeFor("file." + extension);
+            }
+        };
+    }
+
+    /**
+     * 首次使用默认值时才探测平台
+     */
+    private static class Holder {
+
+        static final Platform PLATFORM = findPlatform();
+
+        private static Platform findPlatform() {
+            try {
+                Class.forName("android.os.Looper");
+            } catch (ClassNotFoundException e) {
+                return new Platform();
+            }
+            //Android 上缺少适配类时回调会落到 I/O 线程，直接失败而不是静默退回 JVM 实现
+            try {
+                return (Platform) Class.forName(ANDROID_PLATFORM).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(ANDROID_PLATFORM + " is missing on Android; "
+                        + "keep it in R8/ProGuard (see consumer-rules.pro) or set both the callback executor and the MIME resolver explicitly", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,698 @@
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * 持久化的批量发送队列，适用于不关心延迟、只要求吞吐和不丢失的上报类请求
+ * <p>
+ * 入队只在锁内把请求追加到内存映射的日志分段中，不访问网络也不做磁盘同步；下一个分段由后台预先创建。
+ * 封存线程定期把当前分段换下，在锁外落盘并截断到实际长度；发送线程把同一地址的连续请求合并为
+ * JSON 数组并 gzip 压缩后发送，并发数有上限。
+ * <p>
+ * 发送失败的批次写入 retry 目录，按指数退避重新发送，不阻塞后续分段和其他地址；超过重试轮数、
+ * 被服务端永久拒绝（4xx）或分段损坏时移入 dead 目录。分段内所有批次都处理完后删除该分段；
+ * 进程退出后未处理完的分段在下次启动时重新发送（至少一次）。日志和重试文件总大小超过上限时入队失败。
+ * <p>
+ * 日志写入页缓存，进程崩溃不丢数据；封存分段时强制落盘，断电最多丢失一个刷新间隔内的请求。
+ * 接收端需支持 Content-Encoding: gzip 的 JSON 数组请求体。
+ */
+public class RequestQueue {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String RETRY_DIR = "retry";                      //等待重试的批次
+    private static final String DEAD_DIR = "dead";                        //放弃发送的批次和损坏的分段
+    private static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;      //分段大小
+    private static final long DEFAULT_MAX_DISK = 256L * 1024 * 1024;      //日志和重试文件总大小上限
+    private static final int DEFAULT_CONCURRENCY = 2;                     //并发发送的批次数
+    private static final long DEFAULT_FLUSH_INTERVAL = 1000;              //刷新间隔（毫秒）
+    private static final int MAX_BATCH_BYTES = 512 * 1024;                //单批未压缩大小上限
+    private static final int MAX_ROUNDS = 10;                             //重试轮数上限
+    private static final long RETRY_DELAY = 1000;                         //首轮重试等待（毫秒）
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(30);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private static final int DELIVERED = 0;
+    private static final int RETRY = 1;
+    private static final int REJECTED = 2;
+
+    private final File directory;
+    private final File retryDirectory;
+    private final File deadDirectory;
+    private final int segmentSize;
+    private final long maxDisk;
+    private final long flushInterval;
+    private final ExecutorService senders;
+    private final Thread sealer;
+    private final Thread flusher;
+    private final AtomicLong diskBytes = new AtomicLong(); //日志和重试文件占用的磁盘（分段按映射大小计）
+    private final AtomicLong fileSequence = new AtomicLong();
+
+    private Segment active;                                //当前写入的分段
+    private Segment spare;                                 //预先创建的下一个分段
+    private final List<Segment> sealing = new ArrayList<>(); //已换下、等待落盘的分段
+    private long nextIndex;
+    private long lastSeal = System.nanoTime();
+    private volatile boolean closed;
+    private final long recoveredBelow;                     //序号小于它的分段来自上次运行，可以直接发送
+    private final Set<Long> finalized = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>()); //本次运行中已落盘、可以发送的分段
+
+    public RequestQueue(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_DISK, DEFAULT_CONCURRENCY, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * @param directory     日志目录
+     * @param segmentSize   分段大小（字节），单条请求不能超过该大小
+     * @param maxDisk       日志和重试文件总大小上限（字节）
+     * @param concurrency   并发发送的批次数
+     * @param flushInterval 刷新间隔（毫秒）
+     */
+    public RequestQueue(File directory, int segmentSize, long maxDisk, int concurrency, long flushInterval) throws IOException {
+        this.directory = directory;
+        this.retryDirectory = new File(directory, RETRY_DIR);
+        this.deadDirectory = new File(directory, DEAD_DIR);
+        for (File dir : new File[]{directory, retryDirectory, deadDirectory}) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+        }
+        this.segmentSize = segmentSize;
+        this.maxDisk = maxDisk;
+        this.flushInterval = flushInterval;
+        File[] existing = listFiles(directory);
+        nextIndex = existing.length > 0 ? indexOf(existing[existing.length - 1]) + 1 : 0;
+        recoveredBelow = nextIndex;
+        for (File file : existing) {
+            diskBytes.addAndGet(file.length());
+        }
+        for (File file : listFiles(retryDirectory)) {
+            diskBytes.addAndGet(file.length());
+        }
+        spare = openSegment();
+        senders = Executors.newFixedThreadPool(concurrency, daemon("RequestQueue-sender"));
+        sealer = daemon("RequestQueue-sealer").newThread(new Runnable() {
+            @Override
+            public void run() {
+                sealLoop();
+            }
+        });
+        flusher = daemon("RequestQueue-flusher").newThread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        });
+        sealer.start();
+        flusher.start();
+    }
+
+    /**
+     * 入队 post [map 形式]
+     * <p>
+     * 与 OkHttpHelper.post 不同，参数不以表单发送，而是作为 JSON 对象放入批量请求的 JSON 数组中。
+     */
+    public void post(String url, Map<String, String> params) throws IOException {
+        postJson(url, new JSONObject(params).toString());
+    }
+
+    /**
+     * 入队 post [json 形式]，只写本地日志，不阻塞在网络上
+     *
+     * @param json JSON 对象或数组，入队时校验并规范化，非法时抛出 IllegalArgumentException
+     * @throws IOException 队列占用的磁盘已达上限
+     */
+    public void postJson(String url, String json) throws IOException {
+        if (HttpUrl.parse(url) == null) {
+            throw new IllegalArgumentException("Invalid url: " + url);
+        }
+        byte[] urlBytes = url.getBytes(UTF_8);
+        byte[] jsonBytes = normalizeJson(json).getBytes(UTF_8);
+        int length = 2 + urlBytes.length + jsonBytes.length;
+        if (urlBytes.length > 0xffff || 4 + length > segmentSize) {
+            throw new IllegalArgumentException("Request too large: " + length + " bytes");
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("RequestQueue is closed");
+            }
+            if (active == null || active.buffer.remaining() < 4 + length) {
+                roll();
+            }
+            active.buffer.putInt(length);
+            active.buffer.putShort((short) urlBytes.length);
+            active.buffer.put(urlBytes);
+            active.buffer.put(jsonBytes);
+        }
+    }
+
+    /**
+     * 停止入队并封存当前分段，尚未发送的请求留在磁盘上，下次启动时发送
+     */
+    public void close() throws IOException {
+        List<Segment> toSeal;
+        Segment unused;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (active != null) {
+                sealing.add(active);
+                active = null;
+            }
+            toSeal = new ArrayList<>(sealing);
+            sealing.clear();
+            unused = spare;
+            spare = null;
+        }
+        sealer.interrupt();
+        flusher.interrupt();
+        senders.shutdownNow();
+        for (Segment segment : toSeal) {
+            finish(segment);
+            finalized.add(segment.index);
+        }
+        if (unused != null) {
+            unused.raf.close();
+            unused.file.delete();
+            diskBytes.addAndGet(-segmentSize);
+        }
+    }
+
+    private static String normalizeJson(String json) {
+        String trimmed = json.trim();
+        try {
+            if (trimmed.startsWith("{")) {
+                return new JSONObject(trimmed).toString();
+            }
+            if (trimmed.startsWith("[")) {
+                return new JSONArray(trimmed).toString();
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid JSON: " + e.getMessage(), e);
+        }
+        throw new IllegalArgumentException("JSON object or array expected");
+    }
+
+    /**
+     * 换下当前分段（调用方持有锁），正常情况下直接换上预先创建的分段
+     */
+    private void roll() throws IOException {
+        if (active != null) {
+            sealing.add(active);
+            active = null;
+        }
+        if (spare != null) {
+            active = spare;
+            spare = null;
+        } else {
+            //封存线程来不及预建时才在调用线程上创建
+            active = openSegment();
+        }
+        LockSupport.unpark(sealer);
+    }
+
+    private Segment openSegment() throws IOException {
+        if (diskBytes.addAndGet(segmentSize) > maxDisk) {
+            diskBytes.addAndGet(-segmentSize);
+            throw new IOException("RequestQueue is full");
+        }
+        long index;
+        synchronized (this) {
+            index = nextIndex++;
+        }
+        File file = new File(directory, String.format("%019d%s", index, SEGMENT_SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return new Segment(index, file, raf, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        } catch (IOException e) {
+            raf.close();
+            file.delete();
+            diskBytes.addAndGet(-segmentSize);
+            throw e;
+        }
+    }
+
+    /**
+     * 落盘并截断到实际写入的长度
+     */
+    private void finish(Segment segment) throws IOException {
+        int length = segment.buffer.position();
+        segment.buffer.force();
+        segment.raf.setLength(length);
+        segment.raf.close();
+        diskBytes.addAndGet(length - segmentSize);
+    }
+
+    private void sealLoop() {
+        while (!closed) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushInterval));
+            try {
+                List<Segment> toSeal;
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    if (active != null && active.buffer.position() > 0
+                            && now - lastSeal >= TimeUnit.MILLISECONDS.toNanos(flushInterval)) {
+                        sealing.add(active);
+                        active = spare;
+                        spare = null;
+                        lastSeal = now;
+                    }
+                    toSeal = new ArrayList<>(sealing);
+                    sealing.clear();
+                }
+                //先预建下一个分段再落盘，避免入队线程在 force() 期间自己创建分段；磁盘已满时等截断后再试
+                boolean prepared = prepareSpare();
+                for (Segment segment : toSeal) {
+                    finish(segment);
+                    finalized.add(segment.index);
+                }
+                if (!prepared) {
+                    prepareSpare();
+                }
+            } catch (IOException | RuntimeException e) {
+                //出错时等待下一个周期重试
+            }
+        }
+    }
+
+    /**
+     * 没有备用分段时创建一个
+     *
+     * @return 是否已有备用分段；磁盘已满时返回 false，入队会在需要新分段时报告 IOException
+     */
+    private boolean prepareSpare() throws IOException {
+        synchronized (this) {
+            if (spare != null || closed) {
+                return true;
+            }
+        }
+        Segment segment;
+        try {
+            segment = openSegment();
+        } catch (IOException e) {
+            return false;
+        }
+        synchronized (this) {
+            if (spare == null && !closed) {
+                spare = segment;
+                return true;
+            }
+        }
+        segment.raf.close();
+        segment.file.delete();
+        diskBytes.addAndGet(-segmentSize);
+        return true;
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(flushInterval);
+                for (File file : listFiles(directory)) {
+                    long index = indexOf(file);
+                    if (index < recoveredBelow || finalized.contains(index)) {
+                        drainOrDefer(file, 0);
+                        finalized.remove(index);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                for (File file : listFiles(retryDirectory)) {
+                    if (notBeforeOf(file) <= now) {
+                        drainOrDefer(file, roundsOf(file));
+                    }
+                }
+                trimDead();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                //如文件名无法解析，下一个周期重试
+            }
+        }
+    }
+
+    /**
+     * 发送失败（如写重试文件时磁盘已满）时整个文件移入 retry 目录退避重发，超过重试轮数后移入 dead 目录，
+     * 不在每个刷新周期重复发送
+     */
+    private void drainOrDefer(File file, int rounds) throws InterruptedException {
+        try {
+            drain(file, rounds);
+        } catch (IOException | RuntimeException e) {
+            if (!file.exists()) {
+                return;
+            }
+            if (rounds + 1 >= MAX_ROUNDS || !file.renameTo(retryFile(rounds))) {
+                quarantine(file, file.length());
+            }
+        }
+    }
+
+    private File retryFile(int rounds) {
+        long delay = Math.min(RETRY_DELAY << Math.min(rounds, 20), MAX_RETRY_DELAY);
+        String name = String.format("%019d-%d-%d%s", System.currentTimeMillis() + delay, rounds + 1,
+                fileSequence.incrementAndGet(), SEGMENT_SUFFIX);
+        return new File(retryDirectory, name);
+    }
+
+    /**
+     * 发送一个文件中的所有批次：失败的写入重试文件或移入 dead 目录，然后删除原文件
+     *
+     * @param rounds 该文件已经历的重试轮数
+     */
+    private void drain(File file, int rounds) throws IOException, InterruptedException {
+        long length = file.length();
+        Records records;
+        try {
+            records = readBatches(file);
+        } catch (IOException | RuntimeException e) {
+            quarantine(file, length);
+            return;
+        }
+        List<Batch> retry = new ArrayList<>();
+        List<Batch> rejected = new ArrayList<>();
+        send(records.batches, retry, rejected);
+        if (!retry.isEmpty() && rounds + 1 >= MAX_ROUNDS) {
+            rejected.addAll(retry);
+            retry.clear();
+        }
+        if (!retry.isEmpty()) {
+            diskBytes.addAndGet(writeBatches(retryFile(rounds), retry));
+        }
+        if (!rejected.isEmpty()) {
+            writeBatches(new File(deadDirectory, deadName(file)), rejected);
+        }
+        if (records.corrupt) {
+            quarantine(file, length);
+        } else if (file.delete()) {
+            diskBytes.addAndGet(-length);
+        }
+    }
+
+    /**
+     * 并发发送；同一地址在本轮中失败后，其余批次不再发送，直接进入重试，避免占满发送线程
+     */
+    private void send(List<Batch> batches, final List<Batch> retry, final List<Batch> rejected) throws InterruptedException {
+        final Set<String> failedUrls = new HashSet<>();
+        final CountDownLatch latch = new CountDownLatch(batches.size());
+        for (final Batch batch : batches) {
+            senders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int result = RETRY;
+                    try {
+                        synchronized (failedUrls) {
+                            if (failedUrls.contains(batch.url)) {
+                                return;
+                            }
+                        }
+                        result = send(batch);
+                    } catch (RuntimeException e) {
+                        result = RETRY;
+                    } finally {
+                        synchronized (failedUrls) {
+                            if (result == RETRY) {
+                                failedUrls.add(batch.url);
+                                retry.add(batch);
+                            } else if (result == REJECTED) {
+                                rejected.add(batch);
+                            }
+                        }
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        latch.await();
+    }
+
+    private int send(Batch batch) {
+        if (HttpUrl.parse(batch.url) == null) {
+            return REJECTED;
+        }
+        Request request;
+        try {
+            request = new Request.Builder()
+                    .url(batch.url)
+                    .header("Content-Encoding", "gzip")
+                    .post(RequestBody.create(JSON, gzip(batch)))
+                    .build();
+        } catch (IOException e) {
+            return RETRY;
+        }
+        try {
+            Response response = OkHttpHelper.getClient().newCall(request).execute();
+            int code = response.code();
+            response.close();
+            if (response.isSuccessful()) {
+                return DELIVERED;
+            }
+            //4xx 中除超时和限流外都是永久错误，重试没有意义
+            return code >= 400 && code < 500 && code != 408 && code != 429 ? REJECTED : RETRY;
+        } catch (IOException e) {
+            return RETRY;
+        }
+    }
+
+    private static byte[] gzip(Batch batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        try {
+            out.write('[');
+            for (int i = 0; i < batch.records.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.write(batch.records.get(i));
+            }
+            out.write(']');
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 读出文件中的请求，同一地址的连续请求合并为一批；遇到不完整或非法的记录头时停止并标记损坏
+     */
+    private static Records readBatches(File file) throws IOException {
+        Records records = new Records();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            Batch batch = null;
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length == 0) {
+                    //未截断的分段（进程崩溃时）以 0 结尾
+                    break;
+                }
+                if (length < 2 || length > buffer.remaining()) {
+                    records.corrupt = true;
+                    break;
+                }
+                int urlLength = buffer.getShort() & 0xffff;
+                if (urlLength > length - 2) {
+                    records.corrupt = true;
+                    break;
+                }
+                byte[] urlBytes = new byte[urlLength];
+                buffer.get(urlBytes);
+                byte[] record = new byte[length - 2 - urlLength];
+                buffer.get(record);
+                String url = new String(urlBytes, UTF_8);
+                if (batch == null || !batch.url.equals(url) || batch.bytes + record.length > MAX_BATCH_BYTES) {
+                    batch = new Batch(url);
+                    records.batches.add(batch);
+                }
+                batch.records.add(record);
+                batch.bytes += record.length + 1;
+            }
+        } finally {
+            raf.close();
+        }
+        return records;
+    }
+
+    /**
+     * 以分段相同的格式写出批次，先写临时文件再改名
+     *
+     * @return 写入的字节数
+     */
+    private static long writeBatches(File file, List<Batch> batches) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        boolean written = false;
+        try {
+            for (Batch batch : batches) {
+                byte[] urlBytes = batch.url.getBytes(UTF_8);
+                for (byte[] record : batch.records) {
+                    out.writeInt(2 + urlBytes.length + record.length);
+                    out.writeShort(urlBytes.length);
+                    out.write(urlBytes);
+                    out.write(record);
+                }
+            }
+            out.close();
+            written = true;
+        } finally {
+            if (!written) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+                temp.delete();
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot move " + temp + " to " + file);
+        }
+        return file.length();
+    }
+
+    /**
+     * 损坏的文件原样移入 dead 目录
+     */
+    private void quarantine(File file, long length) {
+        if (file.renameTo(new File(deadDirectory, deadName(file))) || file.delete()) {
+            diskBytes.addAndGet(-length);
+        }
+    }
+
+    /**
+     * dead 目录超过总上限的 1/4 时删除最早的文件
+     */
+    private void trimDead() {
+        File[] files = listFiles(deadDirectory);
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        for (File file : files) {
+            if (size <= maxDisk / 4) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    private String deadName(File file) {
+        String name = file.getName();
+        return name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + "-" + fileSequence.incrementAndGet() + SEGMENT_SUFFIX;
+    }
+
+    private static File[] listFiles(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static long indexOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * 重试文件名：最早发送时间-已重试轮数-序号.seg
+     */
+    private static long notBeforeOf(File file) {
+        return Long.parseLong(file.getName().split("-")[0]);
+    }
+
+    private static int roundsOf(File file) {
+        return Integer.parseInt(file.getName().split("-")[1]);
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static class Segment {
+
+        final long index;
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+
+        Segment(long index, File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Records {
+
+        final List<Batch> batches = new ArrayList<>();
+        boolean corrupt;
+    }
+
+    private static class Batch {
+
+        final String url;
+        final List<byte[]> records = new ArrayList<>();
+        int bytes;
+
+        Batch(String url) {
+            this.url = url;
+        }
+    }
+}
@@ -1,23 +1,35 @@
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
+import io.reactivex.Emitter;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
-import io.reactivex.Observer;
-import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.ObservableSource;
+import io.reactivex.Scheduler;
 import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.BiConsumer;
+import io.reactivex.functions.Consumer;
 import io.reactivex.functions.Function;
+import io.reactivex.observers.DisposableObserver;
 import io.reactivex.schedulers.Schedulers;
 import okhttp3.Interceptor;
 import okhttp3.MediaType;
@@ -27,10 +39,13 @@ import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 import okio.Buffer;
+import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.ForwardingSource;
 import okio.Okio;
 import okio.Source;
+import org.reactivestreams.Publisher;
+import retrofit2.Call;
 import retrofit2.Converter;
 import retrofit2.Retrofit;
 import retrofit2.adapter.rxjava2.RxJava2CallAdapterFactory;
@@ -38,6 +53,7 @@ import retrofit2.http.Body;
 import retrofit2.http.FieldMap;
 import retrofit2.http.FormUrlEncoded;
 import retrofit2.http.GET;
+import retrofit2.http.Header;
 import retrofit2.http.Headers;
 import retrofit2.http.Multipart;
 import retrofit2.http.POST;
@@ -54,6 +70,10 @@ public class RetrofitHelper {
     private static final int TIMEOUT = 10; //超时时间
     private static volatile OkHttpClient mOkHttpClient;
     private static volatile OkHttpClient mDownloadClient;
+    private static volatile OkHttpClient mStreamClient;
+    private static volatile Scheduler sCallbackScheduler; //由 Platform.callbackExecutor() 创建，回调线程变更时重建
+    private static volatile Executor sCallbackSchedulerExecutor;
+    private static final List<Codec> sCodecs = new CopyOnWriteArrayList<>(); //已注册的编解码器，按注册顺序匹配，请求体使用首个支持其类型的编解码器
 
     private RetrofitHelper() {
     }
@@ -88,6 +108,19 @@ public class RetrofitHelper {
                 .build();
     }
 
+    private static OkHttpClient getStreamClient() {
+        if (mStreamClient == null) {
+            synchronized (RetrofitHelper.class) {
+                //流式响应两条记录之间可能长时间空闲，不设置读取超时
+                if (mStreamClient == null)
+                    mStreamClient = getOkHttpClient().newBuilder()
+                            .readTimeout(0, TimeUnit.SECONDS)
+                            .build();
+            }
+        }
+        return mStreamClient;
+    }
+
     private static class StringConverter implements Converter<ResponseBody, String> {
 
         public static final StringConverter INSTANCE = new StringConverter();
@@ -118,12 +151,143 @@ public class RetrofitHelper {
         }
     }
 
+    /**
+     * 二进制编解码器（Protobuf / MessagePack / CBOR 等），直接在 Okio 缓冲区上读写
+     */
+    public interface Codec {
+
+        MediaType mediaType();
+
+        /**
+         * 是否能编解码该类型，不支持的类型交给其他编解码器或转换工厂
+         */
+        boolean supports(Type type);
+
+        void encode(Object value, BufferedSink sink) throws IOException;
+
+        Object decode(Type type, BufferedSource source) throws IOException;
+    }
+
+    /**
+     * 注册编解码器：请求使用首个支持该类型的编解码器，响应按 Content-Type 选择
+     */
+    public static void registerCodec(Codec codec) {
+        sCodecs.add(codec);
+    }
+
+    /**
+     * 支持该类型的编解码器，mediaType 不为 null 时还需与之匹配
+     */
+    private static Codec findCodec(Type type, MediaType mediaType) {
+        for (Codec codec : sCodecs) {
+            if (!codec.supports(type)) {
+                continue;
+            }
+            MediaType codecType = codec.mediaType();
+            if (mediaType == null || (codecType.type().equalsIgnoreCase(mediaType.type())
+                    && codecType.subtype().equalsIgnoreCase(mediaType.subtype()))) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 只列出能解码该类型的编解码器
+     */
+    private static String acceptHeader(Type type) {
+        StringBuilder builder = new StringBuilder();
+        for (Codec codec : sCodecs) {
+            if (!codec.supports(type)) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(codec.mediaType().type()).append('/').append(codec.mediaType().subtype());
+        }
+        return builder.length() > 0 ? builder.toString() : null;
+    }
+
+    private static Object decode(ResponseBody value, Type type) throws IOException {
+        try {
+            Codec codec = findCodec(type, value.contentType());
+            if (codec == null) {
+                throw new IOException("No codec for " + type + " with Content-Type " + value.contentType());
+            }
+            return codec.decode(type, value.source());
+        } finally {
+            value.close();
+        }
+    }
+
+    private static class CodecRequestBody extends RequestBody {
+
+        private final Codec codec;
+
+        private final Object value;
+
+        CodecRequestBody(Codec codec, Object value) {
+            this.codec = codec;
+            this.value = value;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return codec.mediaType();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            codec.encode(value, sink);
+        }
+    }
+
+    /**
+     * 二进制编解码转换工厂，只处理已注册编解码器支持的类型，其余类型返回 null 交给后面的工厂
+     */
+    public static class CodecConverterFactory extends Converter.Factory {
+
+        private static final CodecConverterFactory INSTANCE = new CodecConverterFactory();
+
+        public static CodecConverterFactory create() {
+            return INSTANCE;
+        }
+
+        @Override
+        public Converter<ResponseBody, ?> responseBodyConverter(final Type type, Annotation[] annotations, Retrofit retrofit) {
+            if (findCodec(type, null) == null) {
+                return null;
+            }
+            return new Converter<ResponseBody, Object>() {
+                @Override
+                public Object convert(ResponseBody value) throws IOException {
+                    return decode(value, type);
+                }
+            };
+        }
+
+        @Override
+        public Converter<?, RequestBody> requestBodyConverter(Type type, Annotation[] parameterAnnotations, Annotation[] methodAnnotations, Retrofit retrofit) {
+            final Codec codec = findCodec(type, null);
+            if (codec == null) {
+                return null;
+            }
+            return new Converter<Object, RequestBody>() {
+                @Override
+                public RequestBody convert(Object value) throws IOException {
+                    return new CodecRequestBody(codec, value);
+                }
+            };
+        }
+    }
+
     /**
      * 通用的Get请求接口
      */
     private interface GetInterface {
         @GET("{path}")
-        Observable<String> doGet(@Path("path") String path, @QueryMap Map<String, String> params);
+        Observable<String> doGet(@Path("path") String path, @QueryMap Map<String, String> params, @Header(Deadline.HEADER) String timeout);
     }
 
     /**
@@ -132,7 +296,7 @@ public class RetrofitHelper {
     private interface PostInterface {
         @FormUrlEncoded
         @POST("{path}")
-        Observable<String> doPost(@Path("path") String path, @FieldMap Map<String, String> params);
+        Observable<String> doPost(@Path("path") String path, @FieldMap Map<String, String> params, @Header(Deadline.HEADER) String timeout);
     }
 
     /**
@@ -141,7 +305,7 @@ public class RetrofitHelper {
     private interface PostJsonInterface {
         @POST("{path}")
         @Headers("Content-Type:application/json; charset=utf-8")
-        Observable<String> doPost(@Path("path") String path, @Body RequestBody json);
+        Observable<String> doPost(@Path("path") String path, @Body RequestBody json, @Header(Deadline.HEADER) String timeout);
     }
 
     /**
@@ -150,7 +314,7 @@ public class RetrofitHelper {
     private interface PostFileInterface {
         @POST("{path}")
         @Multipart
-        Observable<String> doPostFiles(@Path("path") String path, @PartMap Map<String, RequestBody> params, @Part List<MultipartBody.Part> files);
+        Observable<String> doPostFiles(@Path("path") String path, @PartMap Map<String, RequestBody> params, @Part List<MultipartBody.Part> files, @Header(Deadline.HEADER) String timeout);
     }
 
     /**
@@ -159,7 +323,32 @@ public class RetrofitHelper {
     private interface DownloadInterface {
         @Streaming
         @GET
-        Observable<ResponseBody> download(@Url String url);
+        Observable<retrofit2.Response<ResponseBody>> download(@Url String url, @Header(Deadline.HEADER) String timeout);
+    }
+
+    /**
+     * 通用的流式请求接口
+     */
+    private interface StreamInterface {
+        @Streaming
+        @GET("{path}")
+        Call<ResponseBody> doStream(@Path("path") String path, @QueryMap Map<String, String> params);
+    }
+
+    /**
+     * 通用的Get请求接口（二进制编解码）
+     */
+    private interface GetCodecInterface {
+        @GET("{path}")
+        Observable<ResponseBody> doGet(@Path("path") String path, @QueryMap Map<String, String> params, @Header("Accept") String accept, @Header(Deadline.HEADER) String timeout);
+    }
+
+    /**
+     * 通用的Post请求接口（二进制编解码）
+     */
+    private interface PostCodecInterface {
+        @POST("{path}")
+        Observable<ResponseBody> doPost(@Path("path") String path, @Body RequestBody body, @Header("Accept") String accept, @Header(Deadline.HEADER) String timeout);
     }
 
     /**
@@ -184,44 +373,132 @@ public class RetrofitHelper {
         void onError(Throwable e);
     }
 
+    /**
+     * 二进制编解码请求回调接口
+     */
+    public interface CodecListener<T> {
+
+        void onSuccess(T result);
+
+        void onError(Throwable e);
+    }
+
+    /**
+     * 回调线程对应的 Scheduler，{@link Platform#INLINE} 时返回 null，不切换线程
+     */
+    private static Scheduler callbackScheduler() {
+        Executor executor = Platform.callbackExecutor();
+        if (executor == Platform.INLINE) {
+            return null;
+        }
+        synchronized (RetrofitHelper.class) {
+            if (sCallbackSchedulerExecutor != executor) {
+                sCallbackScheduler = Schedulers.from(executor);
+                sCallbackSchedulerExecutor = executor;
+            }
+            return sCallbackScheduler;
+        }
+    }
+
+    private static String timeoutHeader(Deadline deadline) {
+        return deadline == null ? null : deadline.headerValue();
+    }
+
+    /**
+     * 订阅请求：截止时间前未收到响应则取消请求并回调超时，加入分组以便统一取消
+     */
+    private static <T> Disposable subscribe(Observable<T> observable, Deadline deadline, final CallGroup group,
+                                            Scheduler scheduler, DisposableObserver<T> observer) {
+        observable = observable.subscribeOn(Schedulers.io());
+        if (deadline != null) {
+            //只限制响应到达的时间，之后的处理（如写文件）自行检查截止时间
+            observable = observable.timeout(
+                    Observable.timer(Math.max(1, deadline.remaining(TimeUnit.NANOSECONDS)), TimeUnit.NANOSECONDS),
+                    new Function<T, ObservableSource<Long>>() {
+                        @Override
+                        public ObservableSource<Long> apply(T t) throws Exception {
+                            return Observable.never();
+                        }
+                    });
+        }
+        final CallGroup.Cancellable handle = group == null ? null : new DisposableCancellable(observer);
+        if (group != null) {
+            group.add(handle);
+            observable = observable.doFinally(new Action() {
+                @Override
+                public void run() throws Exception {
+                    group.remove(handle);
+                }
+            });
+        }
+        if (scheduler != null) {
+            observable = observable.observeOn(scheduler);
+        }
+        return observable.subscribeWith(observer);
+    }
+
+    private static class DisposableCancellable implements CallGroup.Cancellable {
+
+        private final Disposable disposable;
+
+        DisposableCancellable(Disposable disposable) {
+            this.disposable = disposable;
+        }
+
+        @Override
+        public void cancel() {
+            disposable.dispose();
+        }
+    }
+
+    private static DisposableObserver<String> stringObserver(final RetrofitListener listener) {
+        return new DisposableObserver<String>() {
+            @Override
+            public void onNext(String s) {
+                listener.onSuccess(s);
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                listener.onError(e);
+            }
+
+            @Override
+            public void onComplete() {
+
+            }
+        };
+    }
+
     /**
      * Get请求
      *
      * @param path   请求路径
      * @param params 请求参数Map形式
      */
-    public static void get(String baseUrl, String path, Map<String, String> params, final RetrofitListener listener) {
-        new Retrofit.Builder()
+    public static Disposable get(String baseUrl, String path, Map<String, String> params, final RetrofitListener listener) {
+        return get(baseUrl, path, params, null, null, listener);
+    }
+
+    /**
+     * Get请求（截止时间 / 分组）
+     *
+     * @param path     请求路径
+     * @param params   请求参数Map形式
+     * @param deadline 截止时间，可为 null
+     * @param group    所属分组，可为 null
+     * @return 可用于取消请求的 Disposable
+     */
+    public static Disposable get(String baseUrl, String path, Map<String, String> params, Deadline deadline, CallGroup group, final RetrofitListener listener) {
+        Observable<String> observable = new Retrofit.Builder()
                 .client(getOkHttpClient())
                 .baseUrl(baseUrl)
                 .addConverterFactory(StringConverterFactory.create())
                 .addCallAdapterFactory(RxJava2CallAdapterFactory.create())
                 .build()
                 .create(GetInterface.class)
-                .doGet(path, params)
-                .subscribeOn(Schedulers.io())
-                .observeOn(AndroidSchedulers.mainThread())
-                .subscribe(new Observer<String>() {
-                    @Override
-                    public void onSubscribe(Disposable d) {
-
-                    }
-
-                    @Override
-                    public void onNext(String s) {
-                        listener.onSuccess(s);
-                    }
-
-                    @Override
-                    public void onError(Throwable e) {
-                        listener.onError(e);
-                    }
-
-                    @Override
-                    public void onComplete() {
-
-                    }
-                });
+                .doGet(path, params, timeoutHeader(deadline));
+        return subscribe(observable, deadline, group, callbackScheduler(), stringObserver(listener));
     }
 
     /**
@@ -230,38 +507,28 @@ public class RetrofitHelper {
      * @param path   请求路径
      * @param params 请求参数Map形式
      */
-    public static void post(String baseUrl, String path, Map<String, String> params, final RetrofitListener listener) {
-        new Retrofit.Builder()
+    public static Disposable post(String baseUrl, String path, Map<String, String> params, final RetrofitListener listener) {
+        return post(baseUrl, path, params, null, null, listener);
+    }
+
+    /**
+     * Post请求（截止时间 / 分组）
+     *
+     * @param path     请求路径
+     * @param params   请求参数Map形式
+     * @param deadline 截止时间，可为 null
+     * @param group    所属分组，可为 null
+     */
+    public static Disposable post(String baseUrl, String path, Map<String, String> params, Deadline deadline, CallGroup group, final RetrofitListener listener) {
+        Observable<String> observable = new Retrofit.Builder()
                 .client(getOkHttpClient())
                 .baseUrl(baseUrl)
                 .addConverterFactory(StringConverterFactory.create())
                 .addCallAdapterFactory(RxJava2CallAdapterFactory.create())
                 .build()
                 .create(PostInterface.class)
-                .doPost(path, params)
-                .subscribeOn(Schedulers.io())
-                .observeOn(AndroidSchedulers.mainThread())
-                .subscribe(new Observer<String>() {
-                    @Override
-                    public void onSubscribe(Disposable d) {
-
-                    }
-
-                    @Override
-                    public void onNext(String s) {
-                        listener.onSuccess(s);
-                    }
-
-                    @Override
-                    public void onError(Throwable e) {
-                        listener.onError(e);
-                    }
-
-                    @Override
-                    public void onComplete() {
-
-                    }
-                });
+                .doPost(path, params, timeoutHeader(deadline));
+        return subscribe(observable, deadline, group, callbackScheduler(), stringObserver(listener));
     }
 
     /**
@@ -270,39 +537,29 @@ public class RetrofitHelper {
      * @param path   请求路径
      * @param params 请求参数Map形式
      */
-    public static void postJson(String baseUrl, String path, Map<String, String> params, final RetrofitListener listener) {
+    public static Disposable postJson(String baseUrl, String path, Map<String, String> params, final RetrofitListener listener) {
+        return postJson(baseUrl, path, params, null, null, listener);
+    }
+
+    /**
+     * Post请求（Json数据传输，截止时间 / 分组）
+     *
+     * @param path     请求路径
+     * @param params   请求参数Map形式
+     * @param deadline 截止时间，可为 null
+     * @param group    所属分组，可为 null
+     */
+    public static Disposable postJson(String baseUrl, String path, Map<String, String> params, Deadline deadline, CallGroup group, final RetrofitListener listener) {
         String jsonParams = new JSONObject(params).toString();
-        new Retrofit.Builder()
+        Observable<String> observable = new Retrofit.Builder()
                 .client(getOkHttpClient())
                 .baseUrl(baseUrl)
                 .addConverterFactory(StringConverterFactory.create())
                 .addCallAdapterFactory(RxJava2CallAdapterFactory.create())
                 .build()
                 .create(PostJsonInterface.class)
-                .doPost(path, RequestBody.create(MediaType.parse("Content-Type, application/json"), jsonParams))
-                .subscribeOn(Schedulers.io())
-                .observeOn(AndroidSchedulers.mainThread())
-                .subscribe(new Observer<String>() {
-                    @Override
-                    public void onSubscribe(Disposable d) {
-
-                    }
-
-                    @Override
-                    public void onNext(String s) {
-                        listener.onSuccess(s);
-                    }
-
-                    @Override
-                    public void onError(Throwable e) {
-                        listener.onError(e);
-                    }
-
-                    @Override
-                    public void onComplete() {
-
-                    }
-                });
+                .doPost(path, RequestBody.create(MediaType.parse("Content-Type, application/json"), jsonParams), timeoutHeader(deadline));
+        return subscribe(observable, deadline, group, callbackScheduler(), stringObserver(listener));
     }
 
     /**
@@ -312,7 +569,20 @@ public class RetrofitHelper {
      * @param params 请求参数Map形式
      * @param files  文件集合
      */
-    public static void postFiles(String baseUrl, String path, Map<String, String> params, List<File> files, final RetrofitListener listener) {
+    public static Disposable postFiles(String baseUrl, String path, Map<String, String> params, List<File> files, final RetrofitListener listener) {
+        return postFiles(baseUrl, path, params, files, null, null, listener);
+    }
+
+    /**
+     * 多文件上传（截止时间 / 分组）
+     *
+     * @param path     请求路径
+     * @param params   请求参数Map形式
+     * @param files    文件集合
+     * @param deadline 截止时间，可为 null
+     * @param group    所属分组，可为 null
+     */
+    public static Disposable postFiles(String baseUrl, String path, Map<String, String> params, List<File> files, Deadline deadline, CallGroup group, final RetrofitListener listener) {
         MediaType paramType = MediaType.parse("text/plain");
         MediaType fileType = MediaType.parse("multipart/form-data");
         Map<String, RequestBody> paramMap = new HashMap<>();
@@ -324,37 +594,228 @@ public class RetrofitHelper {
             File file = files.get(i);
             partList.add(MultipartBody.Part.createFormData(FILE_LIST_KEY, file.getName(), RequestBody.create(fileType, file)));
         }
-        new Retrofit.Builder()
+        Observable<String> observable = new Retrofit.Builder()
                 .client(getOkHttpClient())
                 .baseUrl(baseUrl)
                 .addConverterFactory(StringConverterFactory.create())
                 .addCallAdapterFactory(RxJava2CallAdapterFactory.create())
                 .build()
                 .create(PostFileInterface.class)
-                .doPostFiles(path, paramMap, partList)
-                .subscribeOn(Schedulers.io())
-                .observeOn(AndroidSchedulers.mainThread())
-                .subscribe(new Observer<String>() {
-                    @Override
-                    public void onSubscribe(Disposable d) {
+                .doPostFiles(path, paramMap, partList, timeoutHeader(deadline));
+        return subscribe(observable, deadline, group, callbackScheduler(), stringObserver(listener));
+    }
 
+    /**
+     * 流式Get请求（NDJSON），每行发射一条记录
+     * <p>
+     * 按下游的请求量逐行读取响应体，内存占用只与消费速度有关，与响应大小无关。
+     * 请求在 io 线程执行，取消订阅时关闭连接。
+     *
+     * @param path   请求路径
+     * @param params 请求参数Map形式
+     */
+    public static Flowable<String> streamLines(String baseUrl, String path, Map<String, String> params) {
+        return stream(baseUrl, path, params, new BiConsumer<BufferedSource, Emitter<String>>() {
+            @Override
+            public void accept(BufferedSource source, Emitter<String> emitter) throws Exception {
+                String line;
+                do {
+                    line = source.readUtf8Line();
+                } while (line != null && line.isEmpty());
+                if (line == null) {
+                    emitter.onComplete();
+                } else {
+                    emitter.onNext(line);
+                }
+            }
+        });
+    }
+
+    /**
+     * 流式Get请求（SSE），每个事件发射一次其 data 字段
+     * <p>
+     * 多行 data 以换行符拼接；注释行和其余字段被忽略；流结束时未以空行结尾的事件被丢弃。
+     *
+     * @param path   请求路径
+     * @param params 请求参数Map形式
+     */
+    public static Flowable<String> streamEvents(String baseUrl, String path, Map<String, String> params) {
+        return stream(baseUrl, path, params, new BiConsumer<BufferedSource, Emitter<String>>() {
+            @Override
+            public void accept(BufferedSource source, Emitter<String> emitter) throws Exception {
+                StringBuilder data = null;
+                String line;
+                while ((line = source.readUtf8Line()) != null) {
+                    if (line.isEmpty()) {
+                        if (data != null) {
+                            emitter.onNext(data.toString());
+                            return;
+                        }
+                    } else if (line.startsWith("data:")) {
+                        int start = line.startsWith("data: ") ? 6 : 5;
+                        if (data == null) {
+                            data = new StringBuilder();
+                        } else {
+                            data.append('\n');
+                        }
+                        data.append(line, start, line.length());
                     }
+                }
+                emitter.onComplete();
+            }
+        });
+    }
 
+    /**
+     * 每次订阅新建一个 Call；execute() 推迟到首次请求数据时在生成器中执行，此时取消已经挂上，
+     * 取消订阅时立即 cancel，关闭连接，从而中断阻塞在 execute() 或 readUtf8Line() 上的 io 线程。
+     * 取消后 execute() 或读取抛出的 IOException 作为正常结束处理，不再下发
+     */
+    private static Flowable<String> stream(final String baseUrl, final String path, final Map<String, String> params,
+                                           final BiConsumer<BufferedSource, Emitter<String>> reader) {
+        return Flowable.defer(new Callable<Publisher<String>>() {
+            @Override
+            public Publisher<String> call() throws Exception {
+                final Call<ResponseBody> call = new Retrofit.Builder()
+                        .client(getStreamClient())
+                        .baseUrl(baseUrl)
+                        .build()
+                        .create(StreamInterface.class)
+                        .doStream(path, params);
+                return Flowable.generate(new Callable<BufferedSource[]>() {
                     @Override
-                    public void onNext(String s) {
-                        listener.onSuccess(s);
+                    public BufferedSource[] call() throws Exception {
+                        return new BufferedSource[1];
                     }
-
+                }, new BiConsumer<BufferedSource[], Emitter<String>>() {
                     @Override
-                    public void onError(Throwable e) {
-                        listener.onError(e);
+                    public void accept(BufferedSource[] source, Emitter<String> emitter) throws Exception {
+                        try {
+                            if (source[0] == null) {
+                                source[0] = execute(call);
+                            }
+                            reader.accept(source[0], emitter);
+                        } catch (IOException e) {
+                            //取消导致的连接或读取失败不再作为错误下发
+                            if (!call.isCanceled()) {
+                                throw e;
+                            }
+                            emitter.onComplete();
+                        }
                     }
-
+                }, new Consumer<BufferedSource[]>() {
+                    @Override
+                    public void accept(BufferedSource[] source) throws Exception {
+                        if (source[0] != null) {
+                            source[0].close();
+                        }
+                    }
+                }).doOnCancel(new Action() {
                     @Override
-                    public void onComplete() {
+                    public void run() throws Exception {
+                        call.cancel();
+                    }
+                });
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    private static BufferedSource execute(Call<ResponseBody> call) throws IOException {
+        retrofit2.Response<ResponseBody> response = call.execute();
+        if (!response.isSuccessful()) {
+            if (response.errorBody() != null) {
+                response.errorBody().close();
+            }
+            throw new IOException("HTTP " + response.code() + " " + response.message());
+        }
+        return response.body().source();
+    }
+
+    /**
+     * Get请求（二进制编解码）
+     *
+     * @param path   请求路径
+     * @param params 请求参数Map形式
+     * @param type   响应对象类型，交给编解码器解码；没有编解码器支持时不发送请求，直接回调 onError
+     */
+    public static <T> Disposable getCodec(String baseUrl, String path, Map<String, String> params, Type type, CodecListener<T> listener) {
+        return getCodec(baseUrl, path, params, type, null, null, listener);
+    }
+
+    /**
+     * Get请求（二进制编解码，截止时间 / 分组）
+     */
+    public static <T> Disposable getCodec(String baseUrl, String path, Map<String, String> params, Type type, Deadline deadline, CallGroup group, CodecListener<T> listener) {
+        String accept = acceptHeader(type);
+        if (accept == null) {
+            return subscribeCodec(Observable.<ResponseBody>error(new IllegalStateException("No codec for " + type)), type, null, null, listener);
+        }
+        Observable<ResponseBody> observable = new Retrofit.Builder()
+                .client(getOkHttpClient())
+                .baseUrl(baseUrl)
+                .addCallAdapterFactory(RxJava2CallAdapterFactory.create())
+                .build()
+                .create(GetCodecInterface.class)
+                .doGet(path, params, accept, timeoutHeader(deadline));
+        return subscribeCodec(observable, type, deadline, group, listener);
+    }
 
+    /**
+     * Post请求（二进制编解码），请求体由首个支持其类型的编解码器直接写入连接
+     *
+     * @param path 请求路径
+     * @param body 请求对象
+     * @param type 响应对象类型，交给编解码器解码；没有编解码器支持时不发送请求，直接回调 onError
+     */
+    public static <T> Disposable postCodec(String baseUrl, String path, Object body, Type type, CodecListener<T> listener) {
+        return postCodec(baseUrl, path, body, type, null, null, listener);
+    }
+
+    /**
+     * Post请求（二进制编解码，截止时间 / 分组）
+     */
+    public static <T> Disposable postCodec(String baseUrl, String path, Object body, Type type, Deadline deadline, CallGroup group, CodecListener<T> listener) {
+        Codec codec = findCodec(body.getClass(), null);
+        String accept = acceptHeader(type);
+        if (codec == null || accept == null) {
+            Type missing = codec == null ? body.getClass() : type;
+            return subscribeCodec(Observable.<ResponseBody>error(new IllegalStateException("No codec for " + missing)), type, null, null, listener);
+        }
+        Observable<ResponseBody> observable = new Retrofit.Builder()
+                .client(getOkHttpClient())
+                .baseUrl(baseUrl)
+                .addCallAdapterFactory(RxJava2CallAdapterFactory.create())
+                .build()
+                .create(PostCodecInterface.class)
+                .doPost(path, new CodecRequestBody(codec, body), accept, timeoutHeader(deadline));
+        return subscribeCodec(observable, type, deadline, group, listener);
+    }
+
+    private static <T> Disposable subscribeCodec(Observable<ResponseBody> observable, final Type type, Deadline deadline, CallGroup group, final CodecListener<T> listener) {
+        Observable<T> decoded = observable
+                .map(new Function<ResponseBody, T>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public T apply(ResponseBody responseBody) throws Exception {
+                        return (T) decode(responseBody, type);
                     }
                 });
+        return subscribe(decoded, deadline, group, callbackScheduler(), new DisposableObserver<T>() {
+            @Override
+            public void onNext(T t) {
+                listener.onSuccess(t);
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                listener.onError(e);
+            }
+
+            @Override
+            public void onComplete() {
+
+            }
+        });
     }
 
     private static class DownloadResponseBody extends ResponseBody {
@@ -427,68 +888,176 @@ public class RetrofitHelper {
         }
     }
 
-    private static void writeFile(InputStream inputString, String filePath, DownloadListener listener) {
+    /**
+     * 下载响应：内容和响应中的 ETag
+     */
+    private static class DownloadBody {
+
+        final InputStream stream;
+        final String etag;
+
+        DownloadBody(InputStream stream, String etag) {
+            this.stream = stream;
+            this.etag = etag;
+        }
+    }
+
+    private static final DownloadBody CACHE_HIT = new DownloadBody(new ByteArrayInputStream(new byte[0]), null); //缓存命中标记
+
+    /**
+     * 写入文件，请求被取消时中止且不再回调，超过截止时间时回调超时
+     * <p>
+     * 使用缓存时写入缓存临时文件并同时计算摘要，校验通过后交付到 filePath。
+     */
+    private static void writeFile(InputStream inputString, String filePath, DownloadCache.Editor editor, Deadline deadline, Disposable disposable, DownloadListener listener) {
 
         File file = new File(filePath);
-        if (file.exists()) {
+        if (editor == null && file.exists()) {
             file.delete();
         }
-        FileOutputStream fos = null;
+        OutputStream fos = null;
+        boolean committed = false;
         try {
-            fos = new FileOutputStream(file);
+            fos = editor != null ? editor.newOutputStream() : new FileOutputStream(file);
 
             byte[] b = new byte[1024];
 
             int len;
             while ((len = inputString.read(b)) != -1) {
+                if (disposable.isDisposed()) {
+                    return;
+                }
+                if (deadline != null && deadline.isExpired()) {
+                    throw new InterruptedIOException("deadline exceeded");
+                }
                 fos.write(b, 0, len);
             }
-            inputString.close();
             fos.close();
+            fos = null;
+            if (editor != null) {
+                editor.commit(file);
+            }
+            committed = true;
             listener.onSuccess();
         } catch (FileNotFoundException e) {
             listener.onError(e);
         } catch (IOException e) {
-            listener.onError(e);
+            if (!disposable.isDisposed()) {
+                listener.onError(e);
+            }
+        } finally {
+            try {
+                inputString.close();
+                if (fos != null) {
+                    fos.close();
+                }
+            } catch (IOException ignored) {
+            }
+            if (editor != null && !committed) {
+                editor.abort();
+            }
         }
     }
 
     /**
      * 文件下载
      *
-     * @param url 文件动态地址(全路径)
+     * @param fileUrl 文件动态地址(全路径)
      */
-    public static void download(String fileUrl, final String filePath, final DownloadListener listener) {
-        DownloadInterface service = getDownloadRetrofit(listener).create(DownloadInterface.class);
-        service.download(fileUrl)
-                .subscribeOn(Schedulers.io())
-                .observeOn(Schedulers.io())
-                .map(new Function<ResponseBody, InputStream>() {
-                    @Override
-                    public InputStream apply(ResponseBody responseBody) throws Exception {
-                        return responseBody.byteStream();
-                    }
-                })
-                .subscribe(new Observer<InputStream>() {
-                    @Override
-                    public void onSubscribe(Disposable d) {
+    public static Disposable download(String fileUrl, final String filePath, final DownloadListener listener) {
+        return download(fileUrl, filePath, null, null, listener);
+    }
 
-                    }
+    /**
+     * 文件下载（截止时间 / 分组）
+     *
+     * @param fileUrl  文件动态地址(全路径)
+     * @param deadline 截止时间，可为 null
+     * @param group    所属分组，可为 null
+     */
+    public static Disposable download(String fileUrl, final String filePath, final Deadline deadline, CallGroup group, final DownloadListener listener) {
+        return download(fileUrl, filePath, null, null, null, deadline, group, listener);
+    }
 
-                    @Override
-                    public void onNext(InputStream inputStream) {
-                        writeFile(inputStream, filePath, listener);
-                    }
+    /**
+     * 文件下载（内容寻址缓存）
+     *
+     * @param fileUrl 文件动态地址(全路径)
+     * @param sha256  期望的内容摘要（64 位十六进制），可为 null；不为 null 时校验下载内容
+     * @param etag    ETag，可为 null；为 null 时使用响应中的 ETag 建立索引
+     */
+    public static Disposable download(String fileUrl, String filePath, String sha256, String etag, DownloadCache cache, DownloadListener listener) {
+        return download(fileUrl, filePath, sha256, etag, cache, null, null, listener);
+    }
 
+    /**
+     * 文件下载（内容寻址缓存，截止时间 / 分组），缓存命中时不访问网络
+     */
+    public static Disposable download(final String fileUrl, final String filePath, final String sha256, final String etag, final DownloadCache cache,
+                                      final Deadline deadline, CallGroup group, final DownloadListener listener) {
+        DownloadCache.checkSha256(sha256);
+        DownloadInterface service = getDownloadRetrofit(listener).create(DownloadInterface.class);
+        final Observable<DownloadBody> network = service.download(fileUrl, timeoutHeader(deadline))
+                .map(new Function<retrofit2.Response<ResponseBody>, DownloadBody>() {
                     @Override
-                    public void onError(Throwable e) {
+                    public DownloadBody apply(retrofit2.Response<ResponseBody> response) throws Exception {
+                        if (!response.isSuccessful()) {
+                            if (response.errorBody() != null) {
+                                response.errorBody().close();
+                            }
+                            throw new retrofit2.HttpException(response);
+                        }
+                        return new DownloadBody(response.body().byteStream(), response.headers().get("ETag"));
+                    }
+                });
+        Observable<DownloadBody> observable = network;
+        if (cache != null && (sha256 != null || etag != null)) {
+            observable = Observable.fromCallable(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return cache.copyTo(fileUrl, sha256, etag, new File(filePath));
+                }
+            }).flatMap(new Function<Boolean, ObservableSource<DownloadBody>>() {
+                @Override
+                public ObservableSource<DownloadBody> apply(Boolean hit) throws Exception {
+                    return hit ? Observable.just(CACHE_HIT) : network;
+                }
+            });
+        }
+        return subscribe(observable, deadline, group, Schedulers.io(), new DisposableObserver<DownloadBody>() {
+            @Override
+            public void onNext(DownloadBody body) {
+                if (body == CACHE_HIT) {
+                    listener.onLoading(100);
+                    listener.onSuccess();
+                    return;
+                }
+                DownloadCache.Editor editor = null;
+                if (cache != null) {
+                    try {
+                        //与 OkHttpHelper 一致：未指定 ETag 时使用响应中的 ETag 建立索引
+                        editor = cache.edit(fileUrl, sha256, etag != null ? etag : body.etag);
+                    } catch (IOException e) {
+                        try {
+                            body.stream.close();
+                        } catch (IOException ignored) {
+                        }
                         listener.onError(e);
+                        return;
                     }
+                }
+                writeFile(body.stream, filePath, editor, deadline, this, listener);
+            }
 
-                    @Override
-                    public void onComplete() {
+            @Override
+            public void onError(Throwable e) {
+                listener.onError(e);
+            }
 
-                    }
-                });
+            @Override
+            public void onComplete() {
+
+            }
+        });
     }
-}
\ No newline at end of file
+}
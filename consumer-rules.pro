@@ -0,0 +1,4 @@
+# Platform 按类名反射加载 Android 适配类，混淆时必须保留类名和无参构造方法
+-keep class AndroidPlatform {
+    public <init>();
+}